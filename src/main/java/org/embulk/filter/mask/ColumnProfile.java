@@ -0,0 +1,144 @@
+package org.embulk.filter.mask;
+
+import com.google.common.hash.HashFunction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Constant-memory sketches of the values of a masked column or JSON path: HyperLogLog distinct count,
+ * a power-of-two length histogram and top-K frequent values. Values are only kept as 64 bit hashes, never raw.
+ * The hashes are keyed with the random key of the run, so that they cannot be reversed by hashing candidate values.
+ */
+public class ColumnProfile {
+    private static final int PRECISION = 12;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final int LENGTH_BUCKETS = 33;
+    private static final int TOP_K = 16;
+
+    private final HashFunction hashFunction;
+    private final byte[] registers = new byte[REGISTERS];
+    private final long[] lengthHistogram = new long[LENGTH_BUCKETS];
+    private final long[] topHashes = new long[TOP_K];
+    private final long[] topCounts = new long[TOP_K];
+    private int topSize = 0;
+    private long count = 0;
+
+    public ColumnProfile(HashFunction hashFunction) {
+        this.hashFunction = hashFunction;
+    }
+
+    public void add(String value) {
+        long hash = hashFunction.hashUnencodedChars(value).asLong();
+        count++;
+
+        int index = (int) (hash >>> (64 - PRECISION));
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+
+        lengthHistogram[32 - Integer.numberOfLeadingZeros(value.length())]++;
+
+        addTopHash(hash, 1);
+    }
+
+    private void addTopHash(long hash, long increment) {
+        // Space-Saving: the least frequent entry is replaced by a new hash, inheriting its count
+        int min = 0;
+        for (int i = 0; i < topSize; i++) {
+            if (topHashes[i] == hash) {
+                topCounts[i] += increment;
+                return;
+            }
+            if (topCounts[i] < topCounts[min]) {
+                min = i;
+            }
+        }
+        if (topSize < TOP_K) {
+            topHashes[topSize] = hash;
+            topCounts[topSize] = increment;
+            topSize++;
+        } else {
+            topHashes[min] = hash;
+            topCounts[min] += increment;
+        }
+    }
+
+    public void merge(ColumnProfile other) {
+        count += other.count;
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+        for (int i = 0; i < LENGTH_BUCKETS; i++) {
+            lengthHistogram[i] += other.lengthHistogram[i];
+        }
+        for (int i = 0; i < other.topSize; i++) {
+            addTopHash(other.topHashes[i], other.topCounts[i]);
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long estimateDistinctCount() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // Linear counting is more accurate for small cardinalities
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public Map<String, Long> getLengthHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < LENGTH_BUCKETS; i++) {
+            if (lengthHistogram[i] == 0) {
+                continue;
+            }
+            long from = i == 0 ? 0 : 1L << (i - 1);
+            long to = i == 0 ? 0 : (1L << i) - 1;
+            histogram.put(from == to ? String.valueOf(from) : from + "-" + to, lengthHistogram[i]);
+        }
+        return histogram;
+    }
+
+    public List<Map.Entry<String, Long>> getTopHashes() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        Map<String, Long> top = new HashMap<>();
+        for (int i = 0; i < topSize; i++) {
+            top.put(String.format("%016x", topHashes[i]), topCounts[i]);
+        }
+        entries.addAll(top.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return Long.compare(o2.getValue(), o1.getValue());
+            }
+        });
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("values=%d, distinct~%d, lengths=%s, top hashes=%s",
+                count, estimateDistinctCount(), getLengthHistogram(), getTopHashes());
+    }
+}
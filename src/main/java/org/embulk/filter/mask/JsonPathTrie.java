@@ -0,0 +1,419 @@
+package org.embulk.filter.mask;
+
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.MapValue;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the JSON paths configured for a column into a single trie so that every path is evaluated
+ * in one walk of the document, and every match is rewritten during that same walk.
+ *
+ * Supported syntax is {@code $}, {@code .name}, {@code ['name']}, {@code [n]} (including negative indexes),
+ * {@code .*}, {@code [*]} and deep scan {@code ..} in front of any of them. Filters, slices, unions and
+ * functions are not supported and {@link #add(String, Object)} returns {@code false} for such paths.
+ *
+ * When a node is matched by a path and other paths point inside it, the inner matches are rewritten first and
+ * the node is then rewritten from the result, so that a partial mask of the node (e.g. {@code regex}) never exposes
+ * values which the inner paths mask.
+ *
+ * The lists of active nodes are reused between walks, one per depth, so a trie must not be shared between threads.
+ */
+public class JsonPathTrie<T> {
+    public interface Rewriter<T> {
+        /**
+         * @return the new value of the node, or null to remove the node from its parent
+         */
+        Value rewrite(T rule, Value value);
+    }
+
+    private static class Rule<T> {
+        private final int order;
+        private final T rule;
+
+        private Rule(int order, T rule) {
+            this.order = order;
+            this.rule = rule;
+        }
+    }
+
+    private static class Node<T> {
+        private final boolean deepScan;
+        private Map<String, Node<T>> fields;
+        private Map<Integer, Node<T>> indexes;
+        private Node<T> wildcard;
+        private Node<T> descendants;
+        private List<Rule<T>> rules;
+
+        private Node(boolean deepScan) {
+            this.deepScan = deepScan;
+        }
+    }
+
+    private enum SegmentType {FIELD, INDEX, WILDCARD}
+
+    private static class Segment {
+        private final SegmentType type;
+        private final boolean deepScan;
+        private final String field;
+        private final int index;
+
+        private Segment(SegmentType type, boolean deepScan, String field, int index) {
+            this.type = type;
+            this.deepScan = deepScan;
+            this.field = field;
+            this.index = index;
+        }
+    }
+
+    private final Node<T> root = new Node<>(false);
+    private final List<List<Node<T>>> activeNodes = new ArrayList<>();
+    private int size = 0;
+
+    /**
+     * Registers a rule for the path.
+     *
+     * @return false if the path uses syntax which is not supported by this trie
+     */
+    public boolean add(String path, T rule) {
+        List<Segment> segments = parse(path);
+        if (segments == null) {
+            return false;
+        }
+        if (segments.isEmpty()) {
+            // "$" itself is never masked
+            return true;
+        }
+
+        Node<T> node = root;
+        for (Segment segment : segments) {
+            if (segment.deepScan) {
+                if (node.descendants == null) {
+                    node.descendants = new Node<>(true);
+                }
+                node = node.descendants;
+            }
+            switch (segment.type) {
+                case FIELD:
+                    if (node.fields == null) {
+                        node.fields = new HashMap<>();
+                    }
+                    if (!node.fields.containsKey(segment.field)) {
+                        node.fields.put(segment.field, new Node<T>(false));
+                    }
+                    node = node.fields.get(segment.field);
+                    break;
+                case INDEX:
+                    if (node.indexes == null) {
+                        node.indexes = new HashMap<>();
+                    }
+                    if (!node.indexes.containsKey(segment.index)) {
+                        node.indexes.put(segment.index, new Node<T>(false));
+                    }
+                    node = node.indexes.get(segment.index);
+                    break;
+                default:
+                    if (node.wildcard == null) {
+                        node.wildcard = new Node<>(false);
+                    }
+                    node = node.wildcard;
+            }
+        }
+        if (node.rules == null) {
+            node.rules = new ArrayList<>();
+        }
+        node.rules.add(new Rule<>(size++, rule));
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Value rewrite(Value value, Rewriter<T> rewriter) {
+        List<Node<T>> active = getActiveNodes(0);
+        addNode(active, root);
+        return walk(value, active, 0, rewriter);
+    }
+
+    /**
+     * Returns the empty list of active nodes for the given depth. Children of a node are walked one after another,
+     * so each depth needs only one list at a time.
+     */
+    private List<Node<T>> getActiveNodes(int depth) {
+        while (activeNodes.size() <= depth) {
+            activeNodes.add(new ArrayList<Node<T>>());
+        }
+        List<Node<T>> nodes = activeNodes.get(depth);
+        nodes.clear();
+        return nodes;
+    }
+
+    private Value walk(Value value, List<Node<T>> active, int depth, Rewriter<T> rewriter) {
+        List<Rule<T>> rules = null;
+        boolean merged = false;
+        for (int i = 0; i < active.size(); i++) {
+            Node<T> node = active.get(i);
+            if (node.rules == null) {
+                continue;
+            }
+            if (rules == null) {
+                rules = node.rules;
+            } else {
+                if (!merged) {
+                    rules = new ArrayList<>(rules);
+                    merged = true;
+                }
+                rules.addAll(node.rules);
+            }
+        }
+        if (rules != null) {
+            Value inner = value;
+            if (hasInnerPaths(active)) {
+                inner = walkChildren(value, active, depth, rewriter);
+            }
+            return applyRules(inner, rules, merged, rewriter);
+        }
+        return walkChildren(value, active, depth, rewriter);
+    }
+
+    private boolean hasInnerPaths(List<Node<T>> active) {
+        for (int i = 0; i < active.size(); i++) {
+            Node<T> node = active.get(i);
+            // Deep scan nodes stay active on every descendant
+            if (node.fields != null || node.indexes != null || node.wildcard != null || node.deepScan) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Value walkChildren(Value value, List<Node<T>> active, int depth, Rewriter<T> rewriter) {
+        if (value.isMapValue()) {
+            return walkMap(value.asMapValue(), active, depth, rewriter);
+        } else if (value.isArrayValue()) {
+            return walkArray(value.asArrayValue(), active, depth, rewriter);
+        }
+        return value;
+    }
+
+    private Value applyRules(Value value, List<Rule<T>> rules, boolean merged, Rewriter<T> rewriter) {
+        // Rules of a single node are already in the configured order
+        if (merged) {
+            // Keep the configured order when the same node is matched by several paths
+            Collections.sort(rules, new Comparator<Rule<T>>() {
+                @Override
+                public int compare(Rule<T> o1, Rule<T> o2) {
+                    return Integer.compare(o1.order, o2.order);
+                }
+            });
+        }
+        Value rewritten = value;
+        for (int i = 0; i < rules.size(); i++) {
+            rewritten = rewriter.rewrite(rules.get(i).rule, rewritten);
+            if (rewritten == null) {
+                break;
+            }
+        }
+        return rewritten;
+    }
+
+    private Value walkMap(MapValue map, List<Node<T>> active, int depth, Rewriter<T> rewriter) {
+        Value[] keyValues = map.getKeyValueArray();
+        Value[] rewritten = null;
+
+        for (int i = 0; i < keyValues.length; i += 2) {
+            Value key = keyValues[i];
+            String field = key.isStringValue() ? key.asStringValue().asString() : key.toJson();
+
+            List<Node<T>> next = getActiveNodes(depth + 1);
+            for (int j = 0; j < active.size(); j++) {
+                Node<T> node = active.get(j);
+                if (node.fields != null) {
+                    addNode(next, node.fields.get(field));
+                }
+                addChildNodes(next, node);
+            }
+            if (next.isEmpty()) {
+                continue;
+            }
+
+            Value child = keyValues[i + 1];
+            Value rewrittenChild = walk(child, next, depth + 1, rewriter);
+            if (rewrittenChild != child) {
+                if (rewritten == null) {
+                    rewritten = keyValues.clone();
+                }
+                rewritten[i + 1] = rewrittenChild;
+            }
+        }
+
+        if (rewritten == null) {
+            return map;
+        }
+        Map<Value, Value> rewrittenMap = new LinkedHashMap<>();
+        for (int i = 0; i < rewritten.length; i += 2) {
+            if (rewritten[i + 1] != null) {
+                rewrittenMap.put(rewritten[i], rewritten[i + 1]);
+            }
+        }
+        return ValueFactory.newMap(rewrittenMap);
+    }
+
+    private Value walkArray(ArrayValue array, List<Node<T>> active, int depth, Rewriter<T> rewriter) {
+        int length = array.size();
+        Value[] rewritten = null;
+        int removed = 0;
+
+        for (int i = 0; i < length; i++) {
+            List<Node<T>> next = getActiveNodes(depth + 1);
+            for (int j = 0; j < active.size(); j++) {
+                Node<T> node = active.get(j);
+                if (node.indexes != null) {
+                    addNode(next, node.indexes.get(i));
+                    addNode(next, node.indexes.get(i - length));
+                }
+                addChildNodes(next, node);
+            }
+            if (next.isEmpty()) {
+                continue;
+            }
+
+            Value child = array.get(i);
+            Value rewrittenChild = walk(child, next, depth + 1, rewriter);
+            if (rewrittenChild != child) {
+                if (rewritten == null) {
+                    rewritten = array.list().toArray(new Value[length]);
+                }
+                rewritten[i] = rewrittenChild;
+                if (rewrittenChild == null) {
+                    removed++;
+                }
+            }
+        }
+
+        if (rewritten == null) {
+            return array;
+        }
+        Value[] elements = rewritten;
+        if (removed > 0) {
+            elements = new Value[length - removed];
+            int j = 0;
+            for (Value element : rewritten) {
+                if (element != null) {
+                    elements[j++] = element;
+                }
+            }
+        }
+        // Both arrays are owned by this walk, so the array value can wrap them without copying
+        return ValueFactory.newArray(elements, true);
+    }
+
+    private void addChildNodes(List<Node<T>> nodes, Node<T> node) {
+        addNode(nodes, node.wildcard);
+        if (node.deepScan) {
+            // Deep scan nodes stay active on every descendant
+            addNode(nodes, node);
+        }
+    }
+
+    private void addNode(List<Node<T>> nodes, Node<T> node) {
+        if (node == null) {
+            return;
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i) == node) {
+                return;
+            }
+        }
+        nodes.add(node);
+        // ".." matches the current node as well as its descendants
+        addNode(nodes, node.descendants);
+    }
+
+    private static List<Segment> parse(String path) {
+        if (path == null || !path.startsWith("$")) {
+            return null;
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        int i = 1;
+        int length = path.length();
+        while (i < length) {
+            boolean deepScan = false;
+            char c = path.charAt(i);
+            if (c == '.') {
+                if (i + 1 < length && path.charAt(i + 1) == '.') {
+                    deepScan = true;
+                    i += 2;
+                } else {
+                    i += 1;
+                }
+                if (i >= length) {
+                    return null;
+                }
+                if (path.charAt(i) != '[') {
+                    int end = i;
+                    while (end < length && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                        end++;
+                    }
+                    String field = path.substring(i, end);
+                    if (field.isEmpty() || field.indexOf('(') >= 0) {
+                        return null;
+                    }
+                    if (field.equals("*")) {
+                        segments.add(new Segment(SegmentType.WILDCARD, deepScan, null, 0));
+                    } else {
+                        segments.add(new Segment(SegmentType.FIELD, deepScan, field, 0));
+                    }
+                    i = end;
+                    continue;
+                }
+            } else if (c != '[') {
+                return null;
+            }
+
+            int end = path.indexOf(']', i);
+            if (end < 0) {
+                return null;
+            }
+            Segment segment = parseBracket(path.substring(i + 1, end).trim(), deepScan);
+            if (segment == null) {
+                return null;
+            }
+            segments.add(segment);
+            i = end + 1;
+        }
+        return segments;
+    }
+
+    private static Segment parseBracket(String content, boolean deepScan) {
+        if (content.equals("*")) {
+            return new Segment(SegmentType.WILDCARD, deepScan, null, 0);
+        }
+        if (content.length() >= 2) {
+            char quote = content.charAt(0);
+            if ((quote == '\'' || quote == '"') && content.charAt(content.length() - 1) == quote) {
+                String field = content.substring(1, content.length() - 1);
+                if (field.indexOf(quote) >= 0 || field.indexOf('\\') >= 0) {
+                    return null;
+                }
+                return new Segment(SegmentType.FIELD, deepScan, field, 0);
+            }
+        }
+        try {
+            return new Segment(SegmentType.INDEX, deepScan, null, Integer.parseInt(content));
+        } catch (NumberFormatException e) {
+            // Filters, slices and unions
+            return null;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.Task;
 import org.embulk.config.TaskSource;
@@ -15,6 +16,7 @@ import org.slf4j.Logger;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 public class MaskFilterPlugin implements FilterPlugin {
     private final Logger logger = Exec.getLogger(MaskFilterPlugin.class);
@@ -23,6 +25,25 @@ public class MaskFilterPlugin implements FilterPlugin {
         @Config("columns")
         List<MaskColumn> getColumns();
 
+        @Config("pipelined")
+        @ConfigDefault("false")
+        boolean getPipelined();
+
+        @Config("pipeline_queue_depth")
+        @ConfigDefault("4")
+        int getPipelineQueueDepth();
+
+        @Config("profile")
+        @ConfigDefault("false")
+        boolean getProfile();
+
+        Optional<String> getProfileId();
+
+        void setProfileId(Optional<String> profileId);
+
+        Optional<String> getProfileKey();
+
+        void setProfileKey(Optional<String> profileKey);
     }
 
     public interface MaskColumn extends Task {
@@ -58,8 +79,30 @@ public class MaskFilterPlugin implements FilterPlugin {
     public void transaction(ConfigSource config, Schema inputSchema,
                             FilterPlugin.Control control) {
         PluginTask task = config.loadConfig(PluginTask.class);
+        if (task.getPipelineQueueDepth() < 1) {
+            throw new ConfigException("pipeline_queue_depth must be greater than 0");
+        }
         Schema outputSchema = buildOutputSchema(task, inputSchema);
-        control.run(task.dump(), outputSchema);
+        task.setProfileId(Optional.<String>absent());
+        task.setProfileKey(Optional.<String>absent());
+        if (!task.getProfile()) {
+            control.run(task.dump(), outputSchema);
+            return;
+        }
+
+        String profileId = UUID.randomUUID().toString();
+        String profileKey = MaskProfile.newKey();
+        task.setProfileId(Optional.of(profileId));
+        task.setProfileKey(Optional.of(profileKey));
+        MaskProfile profile;
+        try {
+            control.run(task.dump(), outputSchema);
+        } finally {
+            profile = MaskProfile.take(profileId, MaskProfile.hashFunction(profileKey));
+        }
+        for (Map.Entry<String, ColumnProfile> entry : profile.getProfiles().entrySet()) {
+            logger.info("Mask profile of '{}': {}", entry.getKey(), entry.getValue());
+        }
     }
 
 
@@ -70,7 +113,12 @@ public class MaskFilterPlugin implements FilterPlugin {
         int i = 0;
         for (Column inputColumn : inputSchema.getColumns()) {
             String name = inputColumn.getName();
-            Type type = (maskColumnMap.containsKey(name) && inputColumn.getType() != Types.JSON) ? Types.STRING : inputColumn.getType();
+            String maskType = maskColumnMap.containsKey(name) ? maskColumnMap.get(name).getType().get() : "";
+            if (maskType.equals("drop")) {
+                continue;
+            }
+            boolean keepType = !maskColumnMap.containsKey(name) || maskType.equals("nullify") || inputColumn.getType() == Types.JSON;
+            Type type = keepType ? inputColumn.getType() : Types.STRING;
             Column outputColumn = new Column(i++, inputColumn.getName(), type);
             builder.add(outputColumn);
         }
@@ -89,6 +137,11 @@ public class MaskFilterPlugin implements FilterPlugin {
 
     @Override
     public PageOutput open(TaskSource taskSource, Schema inputSchema, Schema outputSchema, PageOutput output) {
-        return new MaskPageOutput(taskSource, inputSchema, outputSchema, output);
+        PluginTask task = taskSource.loadTask(PluginTask.class);
+        PageOutput maskPageOutput = new MaskPageOutput(taskSource, inputSchema, outputSchema, output);
+        if (task.getPipelined()) {
+            return new PipelinedPageOutput(maskPageOutput, task.getPipelineQueueDepth());
+        }
+        return maskPageOutput;
     }
 }
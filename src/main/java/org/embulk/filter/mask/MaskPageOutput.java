@@ -1,24 +1,20 @@
 package org.embulk.filter.mask;
 
-import com.fasterxml.jackson.databind.node.TextNode;
 import com.jayway.jsonpath.*;
-import org.apache.commons.lang3.StringUtils;
 import org.embulk.config.TaskSource;
 import org.embulk.spi.*;
 import org.embulk.spi.json.JsonParser;
-import org.embulk.spi.time.Timestamp;
 import org.embulk.spi.type.Type;
 import org.embulk.spi.type.Types;
 import org.embulk.filter.mask.MaskFilterPlugin.*;
 import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
 import org.slf4j.Logger;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class MaskPageOutput implements PageOutput {
     private final MaskFilterPlugin.PluginTask task;
@@ -29,6 +25,10 @@ public class MaskPageOutput implements PageOutput {
     private final PageBuilder builder;
     private final ParseContext parseContext;
     private final JsonParser jsonParser;
+    private final MaskProfile profile;
+    private final Map<String, JsonPathTrie<MaskRule>> jsonPathTries;
+    private final JsonPathTrie.Rewriter<MaskRule> jsonPathRewriter;
+    private final ColumnProcessor[] processors;
     private final Logger logger = Exec.getLogger(MaskPageOutput.class);
 
     public MaskPageOutput(TaskSource taskSource, Schema inputSchema, Schema outputSchema, PageOutput output) {
@@ -43,11 +43,51 @@ public class MaskPageOutput implements PageOutput {
         }
         this.parseContext = initializeParseContext();
         this.jsonParser = new JsonParser();
+        this.profile = task.getProfile() ? new MaskProfile(MaskProfile.hashFunction(task.getProfileKey().get())) : null;
+        this.jsonPathTries = initializeJsonPathTries();
+        this.jsonPathRewriter = new JsonPathTrie.Rewriter<MaskRule>() {
+            @Override
+            public Value rewrite(MaskRule rule, Value value) {
+                switch (rule.getKind()) {
+                    case DROP:
+                        return null;
+                    case NULLIFY:
+                        return ValueFactory.newNil();
+                    default:
+                        if (value.isNilValue()) {
+                            return value;
+                        }
+                        String nakedValue = value.isStringValue() ? value.asStringValue().asString() : value.toJson();
+                        return ValueFactory.newString(rule.mask(nakedValue));
+                }
+            }
+        };
+        this.processors = initializeProcessors();
+    }
+
+    private Map<String, JsonPathTrie<MaskRule>> initializeJsonPathTries() {
+        Map<String, JsonPathTrie<MaskRule>> tries = new HashMap<>();
+        for (MaskColumn maskColumn : maskColumnMap.values()) {
+            JsonPathTrie<MaskRule> trie = new JsonPathTrie<>();
+            boolean supported = true;
+            for (Map<String, String> path : maskColumn.getPaths().or(new ArrayList<Map<String, String>>())) {
+                ColumnProfile pathProfile = profile != null ? profile.get(maskColumn.getName(), path.get("key")) : null;
+                if (!trie.add(path.get("key"), new MaskRule(path, pathProfile))) {
+                    supported = false;
+                    break;
+                }
+            }
+            if (supported) {
+                tries.put(maskColumn.getName(), trie);
+            } else {
+                logger.info("Column '{}' has JSON paths which need to be evaluated one by one", maskColumn.getName());
+            }
+        }
+        return tries;
     }
 
     private ParseContext initializeParseContext() {
         Configuration conf = Configuration.defaultConfiguration();
-        conf = conf.addOptions(Option.DEFAULT_PATH_LEAF_TO_NULL);
         conf = conf.addOptions(Option.SUPPRESS_EXCEPTIONS);
         return JsonPath.using(conf);
     }
@@ -56,166 +96,340 @@ public class MaskPageOutput implements PageOutput {
     public void add(Page page) {
         reader.setPage(page);
         while (reader.nextRecord()) {
-            setValue();
+            for (ColumnProcessor processor : processors) {
+                processor.process();
+            }
             builder.addRecord();
         }
     }
 
-    private void setValue() {
+    /**
+     * Builds the read, mask and write steps of every output column once, so that processing a record
+     * neither dispatches on column types nor looks up mask settings by column name.
+     *
+     * {@link ValueProcessor#process()} is final, leaving one virtual call to the shared code of each column type
+     * and mask type.
+     */
+    private ColumnProcessor[] initializeProcessors() {
+        List<ColumnProcessor> processors = new ArrayList<>();
         for (Column inputColumn : inputColumns) {
-            if (reader.isNull(inputColumn)) {
-                builder.setNull(inputColumn);
+            String name = inputColumn.getName();
+            MaskColumn maskColumn = maskColumnMap.get(name);
+            Column outputColumn = outputColumnMap.get(name);
+            if (maskColumn == null) {
+                processors.add(newPassthroughProcessor(inputColumn, outputColumn));
                 continue;
             }
 
-            String name = inputColumn.getName();
-            Type type = inputColumn.getType();
-
-            if (Types.STRING.equals(type)) {
-                final String value = reader.getString(inputColumn);
-                if (maskColumnMap.containsKey(name)) {
-                    builder.setString(inputColumn, maskAsString(name, value));
-                } else {
-                    builder.setString(inputColumn, value);
-                }
-            } else if (Types.BOOLEAN.equals(type)) {
-                final boolean value = reader.getBoolean(inputColumn);
-                if (maskColumnMap.containsKey(name)) {
-                    builder.setString(inputColumn, maskAsString(name, value));
-                } else {
-                    builder.setBoolean(inputColumn, value);
-                }
-            } else if (Types.DOUBLE.equals(type)) {
-                final double value = reader.getDouble(inputColumn);
-                if (maskColumnMap.containsKey(name)) {
-                    builder.setString(inputColumn, maskAsString(name, value));
-                } else {
-                    builder.setDouble(inputColumn, value);
-                }
-            } else if (Types.LONG.equals(type)) {
-                final long value = reader.getLong(inputColumn);
-                if (maskColumnMap.containsKey(name)) {
-                    builder.setString(inputColumn, maskAsString(name, value));
-                } else {
-                    builder.setLong(inputColumn, value);
-                }
-            } else if (Types.TIMESTAMP.equals(type)) {
-                final Timestamp value = reader.getTimestamp(inputColumn);
-                if (maskColumnMap.containsKey(name)) {
-                    builder.setString(inputColumn, maskAsString(name, value));
-                } else {
-                    builder.setTimestamp(inputColumn, value);
-                }
-            } else if (Types.JSON.equals(type)) {
-                final Value value = reader.getJson(inputColumn);
-                if (maskColumnMap.containsKey(name)) {
-                    builder.setJson(inputColumn, maskAsJson(name, value));
+            MaskRule.Kind kind = MaskRule.Kind.of(maskColumn.getType().get());
+            if (kind == MaskRule.Kind.DROP) {
+                // Dropped columns are never read
+                continue;
+            } else if (kind == MaskRule.Kind.NULLIFY) {
+                processors.add(new NullProcessor(outputColumn));
+            } else if (Types.JSON.equals(inputColumn.getType())) {
+                JsonPathTrie<MaskRule> trie = jsonPathTries.get(name);
+                if (trie != null && trie.isEmpty()) {
+                    processors.add(new JsonProcessor(inputColumn, outputColumn));
                 } else {
-                    builder.setJson(inputColumn, value);
+                    processors.add(new MaskedJsonProcessor(inputColumn, outputColumn, trie));
                 }
             } else {
-                throw new DataException("Unexpected type:" + type);
+                MaskRule rule = new MaskRule(maskColumn, profile != null ? profile.get(name) : null);
+                processors.add(newMaskProcessor(inputColumn, outputColumn, rule));
             }
         }
+        return processors.toArray(new ColumnProcessor[processors.size()]);
     }
 
-    private String maskAsString(String name, Object value) {
-        MaskColumn maskColumn = maskColumnMap.get(name);
-        String type = maskColumn.getType().get();
-        String pattern = maskColumn.getPattern().or("");
-        Integer length = maskColumn.getLength().or(-1);
-        Integer start = maskColumn.getStart().or(-1);
-        Integer end = maskColumn.getEnd().or(-1);
+    private ColumnProcessor newPassthroughProcessor(Column inputColumn, Column outputColumn) {
+        Type type = inputColumn.getType();
+        if (Types.STRING.equals(type)) {
+            return new StringProcessor(inputColumn, outputColumn);
+        } else if (Types.BOOLEAN.equals(type)) {
+            return new BooleanProcessor(inputColumn, outputColumn);
+        } else if (Types.DOUBLE.equals(type)) {
+            return new DoubleProcessor(inputColumn, outputColumn);
+        } else if (Types.LONG.equals(type)) {
+            return new LongProcessor(inputColumn, outputColumn);
+        } else if (Types.TIMESTAMP.equals(type)) {
+            return new TimestampProcessor(inputColumn, outputColumn);
+        } else if (Types.JSON.equals(type)) {
+            return new JsonProcessor(inputColumn, outputColumn);
+        } else {
+            throw new DataException("Unexpected type:" + type);
+        }
+    }
+
+    private ValueProcessor newMaskProcessor(Column inputColumn, Column outputColumn, MaskRule rule) {
+        Type type = inputColumn.getType();
+        if (Types.STRING.equals(type)) {
+            return new MaskedStringProcessor(inputColumn, outputColumn, rule);
+        } else if (Types.BOOLEAN.equals(type)) {
+            return new MaskedBooleanProcessor(inputColumn, outputColumn, rule);
+        } else if (Types.DOUBLE.equals(type)) {
+            return new MaskedDoubleProcessor(inputColumn, outputColumn, rule);
+        } else if (Types.LONG.equals(type)) {
+            return new MaskedLongProcessor(inputColumn, outputColumn, rule);
+        } else if (Types.TIMESTAMP.equals(type)) {
+            return new MaskedTimestampProcessor(inputColumn, outputColumn, rule);
+        } else {
+            throw new DataException("Unexpected type:" + type);
+        }
+    }
 
-        return mask(type, value, pattern, length, start, end);
+    private interface ColumnProcessor {
+        void process();
     }
 
-    private Value maskAsJson(String name, Value value) {
-        MaskColumn maskColumn = maskColumnMap.get(name);
-        DocumentContext context = parseContext.parse(value.toJson());
-        List<Map<String, String>> paths = maskColumn.getPaths().or(new ArrayList<Map<String, String>>());
-
-        for (Map<String, String> path : paths) {
-            String key = path.get("key");
-            String type = path.containsKey("type") ? path.get("type") : "all";
-            String pattern = path.containsKey("pattern") ? path.get("pattern") : "";
-            Integer length = path.containsKey("length") ? Integer.parseInt(path.get("length")) : -1;
-            Integer start = path.containsKey("start") ? Integer.parseInt(path.get("start")) : -1;
-            Integer end = path.containsKey("end") ? Integer.parseInt(path.get("end")) : -1;
-            Object element = context.read(key);
-            if (!key.equals("$") && element != null) {
-                String maskedValue = mask(type, element, pattern, length, start, end);
-                context.set(key, new TextNode(maskedValue).asText()).jsonString();
+    private class NullProcessor implements ColumnProcessor {
+        private final Column outputColumn;
+
+        private NullProcessor(Column outputColumn) {
+            this.outputColumn = outputColumn;
+        }
+
+        @Override
+        public void process() {
+            builder.setNull(outputColumn);
+        }
+    }
+
+    private abstract class ValueProcessor implements ColumnProcessor {
+        protected final Column inputColumn;
+        protected final Column outputColumn;
+
+        private ValueProcessor(Column inputColumn, Column outputColumn) {
+            this.inputColumn = inputColumn;
+            this.outputColumn = outputColumn;
+        }
+
+        @Override
+        public final void process() {
+            if (reader.isNull(inputColumn)) {
+                builder.setNull(outputColumn);
+            } else {
+                write();
             }
         }
-        return jsonParser.parse(context.jsonString());
+
+        protected abstract void write();
     }
 
-    @Override
-    public void finish() {
-        builder.finish();
+    private class StringProcessor extends ValueProcessor {
+        private StringProcessor(Column inputColumn, Column outputColumn) {
+            super(inputColumn, outputColumn);
+        }
+
+        @Override
+        protected void write() {
+            builder.setString(outputColumn, reader.getString(inputColumn));
+        }
     }
 
-    @Override
-    public void close() {
-        builder.close();
+    private class BooleanProcessor extends ValueProcessor {
+        private BooleanProcessor(Column inputColumn, Column outputColumn) {
+            super(inputColumn, outputColumn);
+        }
+
+        @Override
+        protected void write() {
+            builder.setBoolean(outputColumn, reader.getBoolean(inputColumn));
+        }
     }
 
-    private String mask(String type, Object value, String pattern, Integer length, Integer start, Integer end) {
-        String maskedValue;
-        String nakedValue = value.toString();
-        if (type.equals("regex")) {
-            maskedValue = maskRegex(nakedValue, pattern);
-        } else if (type.equals("substring")) {
-            maskedValue = maskSubstring(nakedValue, start, end, length);
-        } else if (type.equals("email")) {
-            maskedValue = maskEmail(nakedValue, length);
-        } else if (type.equals("all")) {
-            maskedValue = maskAll(nakedValue, length);
-        } else {
-            maskedValue = nakedValue;
+    private class DoubleProcessor extends ValueProcessor {
+        private DoubleProcessor(Column inputColumn, Column outputColumn) {
+            super(inputColumn, outputColumn);
+        }
+
+        @Override
+        protected void write() {
+            builder.setDouble(outputColumn, reader.getDouble(inputColumn));
         }
-        return maskedValue;
     }
 
-    private String maskAll(Object value, Integer length) {
-        String maskedValue;
-        String nakedValue = value.toString();
-        if (length > 0) {
-            maskedValue = StringUtils.repeat("*", length);
-        } else {
-            maskedValue = nakedValue.replaceAll(".", "*");
+    private class LongProcessor extends ValueProcessor {
+        private LongProcessor(Column inputColumn, Column outputColumn) {
+            super(inputColumn, outputColumn);
+        }
+
+        @Override
+        protected void write() {
+            builder.setLong(outputColumn, reader.getLong(inputColumn));
         }
-        return maskedValue;
     }
 
-    private String maskEmail(Object value, Integer length) {
-        String maskedValue;
-        String nakedValue = value.toString();
-        if (length > 0) {
-            String maskPattern = StringUtils.repeat("*", length) + "@$1";
-            maskedValue = nakedValue.replaceFirst("^.+?@(.+)$", maskPattern);
-        } else {
-            maskedValue = nakedValue.replaceAll(".(?=[^@]*@)", "*");
+    private class TimestampProcessor extends ValueProcessor {
+        private TimestampProcessor(Column inputColumn, Column outputColumn) {
+            super(inputColumn, outputColumn);
+        }
+
+        @Override
+        protected void write() {
+            builder.setTimestamp(outputColumn, reader.getTimestamp(inputColumn));
         }
-        return maskedValue;
     }
 
-    private String maskRegex(Object value, String pattern) {
-        String nakedValue = value.toString();
-        return nakedValue.replaceAll(pattern, "*");
+    private class JsonProcessor extends ValueProcessor {
+        private JsonProcessor(Column inputColumn, Column outputColumn) {
+            super(inputColumn, outputColumn);
+        }
+
+        @Override
+        protected void write() {
+            builder.setJson(outputColumn, reader.getJson(inputColumn));
+        }
     }
 
-    private String maskSubstring(Object value, Integer start, Integer end, Integer length) {
-        String nakedValue = value.toString();
+    private class MaskedStringProcessor extends ValueProcessor {
+        private final MaskRule rule;
 
-        if (nakedValue.length() <= start || (0 <= end && (end - 1) <= start)) return nakedValue;
+        private MaskedStringProcessor(Column inputColumn, Column outputColumn, MaskRule rule) {
+            super(inputColumn, outputColumn);
+            this.rule = rule;
+        }
 
-        start = start < 0 ? 0 : start;
-        end = (end < 0 || nakedValue.length() <= end) ? nakedValue.length() : end;
-        int repeat = length > 0 ? length : end - start;
+        @Override
+        protected void write() {
+            builder.setString(outputColumn, rule.mask(reader.getString(inputColumn)));
+        }
+    }
 
-        StringBuffer buffer = new StringBuffer(nakedValue);
-        return buffer.replace(start, end, StringUtils.repeat("*", repeat)).toString();
+    private class MaskedBooleanProcessor extends ValueProcessor {
+        private final MaskRule rule;
+
+        private MaskedBooleanProcessor(Column inputColumn, Column outputColumn, MaskRule rule) {
+            super(inputColumn, outputColumn);
+            this.rule = rule;
+        }
+
+        @Override
+        protected void write() {
+            builder.setString(outputColumn, rule.mask(String.valueOf(reader.getBoolean(inputColumn))));
+        }
+    }
+
+    private class MaskedDoubleProcessor extends ValueProcessor {
+        private final MaskRule rule;
+
+        private MaskedDoubleProcessor(Column inputColumn, Column outputColumn, MaskRule rule) {
+            super(inputColumn, outputColumn);
+            this.rule = rule;
+        }
+
+        @Override
+        protected void write() {
+            builder.setString(outputColumn, rule.mask(String.valueOf(reader.getDouble(inputColumn))));
+        }
+    }
+
+    private class MaskedLongProcessor extends ValueProcessor {
+        private final MaskRule rule;
+
+        private MaskedLongProcessor(Column inputColumn, Column outputColumn, MaskRule rule) {
+            super(inputColumn, outputColumn);
+            this.rule = rule;
+        }
+
+        @Override
+        protected void write() {
+            builder.setString(outputColumn, rule.mask(String.valueOf(reader.getLong(inputColumn))));
+        }
+    }
+
+    private class MaskedTimestampProcessor extends ValueProcessor {
+        private final MaskRule rule;
+
+        private MaskedTimestampProcessor(Column inputColumn, Column outputColumn, MaskRule rule) {
+            super(inputColumn, outputColumn);
+            this.rule = rule;
+        }
+
+        @Override
+        protected void write() {
+            builder.setString(outputColumn, rule.mask(reader.getTimestamp(inputColumn).toString()));
+        }
+    }
+
+    private class MaskedJsonProcessor extends ValueProcessor {
+        private final JsonPathTrie<MaskRule> trie;
+        private final List<JsonPath> paths = new ArrayList<>();
+        private final List<MaskMapFunction> functions = new ArrayList<>();
+
+        private MaskedJsonProcessor(Column inputColumn, Column outputColumn, JsonPathTrie<MaskRule> trie) {
+            super(inputColumn, outputColumn);
+            this.trie = trie;
+            if (trie == null) {
+                MaskColumn maskColumn = maskColumnMap.get(inputColumn.getName());
+                for (Map<String, String> path : maskColumn.getPaths().or(new ArrayList<Map<String, String>>())) {
+                    String key = path.get("key");
+                    if (key.equals("$")) {
+                        continue;
+                    }
+                    ColumnProfile pathProfile = profile != null ? profile.get(maskColumn.getName(), key) : null;
+                    paths.add(JsonPath.compile(key));
+                    functions.add(new MaskMapFunction(new MaskRule(path, pathProfile)));
+                }
+            }
+        }
+
+        @Override
+        protected void write() {
+            Value value = reader.getJson(inputColumn);
+            if (trie != null) {
+                builder.setJson(outputColumn, trie.rewrite(value, jsonPathRewriter));
+            } else {
+                builder.setJson(outputColumn, maskAsJsonWithJsonPath(value, paths, functions));
+            }
+        }
+    }
+
+    private Value maskAsJsonWithJsonPath(Value value, List<JsonPath> paths, List<MaskMapFunction> functions) {
+        DocumentContext context = parseContext.parse(value.toJson());
+
+        for (int i = 0; i < paths.size(); i++) {
+            MaskMapFunction function = functions.get(i);
+            if (function.rule.getKind() == MaskRule.Kind.DROP) {
+                context.delete(paths.get(i));
+            } else {
+                context.map(paths.get(i), function);
+            }
+        }
+        return jsonParser.parse(context.jsonString());
+    }
+
+    /**
+     * Masks every match of a JSON path on its own, in the same way as {@link #jsonPathRewriter} does for the path trie.
+     */
+    private static class MaskMapFunction implements MapFunction {
+        private final MaskRule rule;
+
+        private MaskMapFunction(MaskRule rule) {
+            this.rule = rule;
+        }
+
+        @Override
+        public Object map(Object currentValue, Configuration configuration) {
+            if (currentValue == null || rule.getKind() == MaskRule.Kind.NULLIFY) {
+                return null;
+            }
+            String nakedValue = currentValue instanceof String
+                    ? (String) currentValue : configuration.jsonProvider().toJson(currentValue);
+            return rule.mask(nakedValue);
+        }
+    }
+
+    @Override
+    public void finish() {
+        builder.finish();
+        if (profile != null) {
+            MaskProfile.publish(task.getProfileId().get(), profile);
+        }
+    }
+
+    @Override
+    public void close() {
+        builder.close();
     }
 }
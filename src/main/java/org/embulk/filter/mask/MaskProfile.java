@@ -0,0 +1,86 @@
+package org.embulk.filter.mask;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.UnsignedLongs;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sketches of every masked column and JSON path processed by a task.
+ *
+ * Filter plugins cannot return task reports, so tasks publish their profiles to an in-process registry keyed by
+ * the run and {@link MaskFilterPlugin#transaction} merges them after all tasks finished. Tasks running in other
+ * processes (e.g. distributed executors) are not included. Values are hashed with SipHash-2-4 keyed by a random
+ * key of the run, which is passed to the tasks together with the run id.
+ */
+public class MaskProfile {
+    private static final Map<String, MaskProfile> PUBLISHED = new HashMap<>();
+
+    private final HashFunction hashFunction;
+    private final Map<String, ColumnProfile> profiles = new LinkedHashMap<>();
+
+    public MaskProfile(HashFunction hashFunction) {
+        this.hashFunction = hashFunction;
+    }
+
+    public static String newKey() {
+        SecureRandom random = new SecureRandom();
+        return String.format("%016x%016x", random.nextLong(), random.nextLong());
+    }
+
+    public static HashFunction hashFunction(String key) {
+        return Hashing.sipHash24(UnsignedLongs.parseUnsignedLong(key.substring(0, 16), 16),
+                UnsignedLongs.parseUnsignedLong(key.substring(16), 16));
+    }
+
+    public ColumnProfile get(String column) {
+        return get(column, null);
+    }
+
+    public ColumnProfile get(String column, String path) {
+        String key = path == null ? column : column + " " + path;
+        ColumnProfile profile = profiles.get(key);
+        if (profile == null) {
+            profile = new ColumnProfile(hashFunction);
+            profiles.put(key, profile);
+        }
+        return profile;
+    }
+
+    public Map<String, ColumnProfile> getProfiles() {
+        return profiles;
+    }
+
+    public void merge(MaskProfile other) {
+        for (Map.Entry<String, ColumnProfile> entry : other.profiles.entrySet()) {
+            ColumnProfile profile = profiles.get(entry.getKey());
+            if (profile == null) {
+                profile = new ColumnProfile(hashFunction);
+                profiles.put(entry.getKey(), profile);
+            }
+            profile.merge(entry.getValue());
+        }
+    }
+
+    public static void publish(String runId, MaskProfile profile) {
+        synchronized (PUBLISHED) {
+            MaskProfile published = PUBLISHED.get(runId);
+            if (published == null) {
+                published = new MaskProfile(profile.hashFunction);
+                PUBLISHED.put(runId, published);
+            }
+            published.merge(profile);
+        }
+    }
+
+    public static MaskProfile take(String runId, HashFunction hashFunction) {
+        synchronized (PUBLISHED) {
+            MaskProfile published = PUBLISHED.remove(runId);
+            return published == null ? new MaskProfile(hashFunction) : published;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.embulk.filter.mask;
+
+import org.apache.commons.lang3.StringUtils;
+import org.embulk.filter.mask.MaskFilterPlugin.MaskColumn;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Mask settings of a column or a JSON path. The mask type is resolved and the regex is compiled once when the rule
+ * is built, so masking a value only switches on {@link Kind}.
+ *
+ * A rule reuses its buffers between values and must not be shared between threads.
+ */
+public class MaskRule {
+    public enum Kind {
+        ALL, EMAIL, REGEX, SUBSTRING, DROP, NULLIFY,
+        // Unknown types keep values as they are
+        NONE;
+
+        public static Kind of(String type) {
+            switch (type) {
+                case "all":
+                    return ALL;
+                case "email":
+                    return EMAIL;
+                case "regex":
+                    return REGEX;
+                case "substring":
+                    return SUBSTRING;
+                case "drop":
+                    return DROP;
+                case "nullify":
+                    return NULLIFY;
+                default:
+                    return NONE;
+            }
+        }
+    }
+
+    private static class RegexMask {
+        private final Matcher matcher;
+        private final String prefix;
+        private final boolean literal;
+        private final StringBuilder builder = new StringBuilder();
+
+        private RegexMask(String regex) {
+            this.matcher = Pattern.compile(regex).matcher("");
+            this.prefix = MaskScanner.literalPrefix(regex);
+            this.literal = !prefix.isEmpty() && prefix.equals(regex);
+        }
+
+        private String mask(String value) {
+            if (!prefix.isEmpty() && value.indexOf(prefix) < 0) {
+                // Every match starts with the prefix, so the value has nothing to mask
+                return value;
+            } else if (literal) {
+                return MaskScanner.replaceLiteral(value, prefix, "*");
+            }
+            // Same as replaceAll("*") without allocating a matcher and parsing the replacement for every value
+            matcher.reset(value);
+            if (!matcher.find()) {
+                return value;
+            }
+            builder.setLength(0);
+            int end = 0;
+            do {
+                builder.append(value, end, matcher.start()).append('*');
+                end = matcher.end();
+            } while (matcher.find());
+            return builder.append(value, end, value.length()).toString();
+        }
+    }
+
+    private final Kind kind;
+    private final RegexMask regexMask;
+    private final int start;
+    private final int end;
+    private final String stars;
+    private final ColumnProfile profile;
+    private char[] buffer = new char[0];
+
+    public MaskRule(MaskColumn maskColumn, ColumnProfile profile) {
+        this(maskColumn.getType().get(), maskColumn.getPattern().or(""), maskColumn.getLength().or(-1),
+                maskColumn.getStart().or(-1), maskColumn.getEnd().or(-1), profile);
+    }
+
+    public MaskRule(Map<String, String> path, ColumnProfile profile) {
+        this(path.containsKey("type") ? path.get("type") : "all",
+                path.containsKey("pattern") ? path.get("pattern") : "",
+                path.containsKey("length") ? Integer.parseInt(path.get("length")) : -1,
+                path.containsKey("start") ? Integer.parseInt(path.get("start")) : -1,
+                path.containsKey("end") ? Integer.parseInt(path.get("end")) : -1,
+                profile);
+    }
+
+    private MaskRule(String type, String pattern, int length, int start, int end, ColumnProfile profile) {
+        this.kind = Kind.of(type);
+        this.regexMask = kind == Kind.REGEX ? new RegexMask(pattern) : null;
+        this.start = start;
+        this.end = end;
+        this.stars = length > 0 ? StringUtils.repeat("*", length) : null;
+        this.profile = profile;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String mask(Object value) {
+        return mask(value.toString());
+    }
+
+    public String mask(String nakedValue) {
+        if (profile != null) {
+            profile.add(nakedValue);
+        }
+        switch (kind) {
+            case ALL:
+                return stars != null ? stars : MaskScanner.maskAll(nakedValue, getBuffer(nakedValue.length()));
+            case EMAIL:
+                return stars != null ? MaskScanner.maskEmail(nakedValue, stars)
+                        : MaskScanner.maskEmail(nakedValue, getBuffer(nakedValue.length()));
+            case REGEX:
+                return regexMask.mask(nakedValue);
+            case SUBSTRING:
+                return maskSubstring(nakedValue);
+            default:
+                return nakedValue;
+        }
+    }
+
+    private char[] getBuffer(int length) {
+        if (buffer.length < length) {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+        }
+        return buffer;
+    }
+
+    private String maskSubstring(String nakedValue) {
+        if (nakedValue.length() <= start || (0 <= end && (end - 1) <= start)) return nakedValue;
+
+        int from = start < 0 ? 0 : start;
+        int to = (end < 0 || nakedValue.length() <= end) ? nakedValue.length() : end;
+        String replacement = stars != null ? stars : StringUtils.repeat("*", to - from);
+
+        return new StringBuilder(nakedValue).replace(from, to, replacement).toString();
+    }
+}
@@ -0,0 +1,130 @@
+package org.embulk.filter.mask;
+
+import java.util.regex.Pattern;
+
+/**
+ * Scanning routines behind the mask types. They give the same results as the regular expressions used before
+ * ({@code replaceAll(".", "*")} and so on) in a single pass over the characters, without compiling patterns per value.
+ */
+public final class MaskScanner {
+    private static final Pattern EMAIL_PATTERN = Pattern.compile("^.+?@(.+)$");
+
+    private MaskScanner() {
+    }
+
+    /**
+     * Returns true for characters which are not matched by "." in {@link Pattern}.
+     */
+    public static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    public static boolean containsLineTerminator(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (isLineTerminator(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@code value.replaceAll(".", "*")}: one asterisk per code point, keeping line terminators. The result is
+     * built in the given buffer of at least {@code value.length()} characters, so that callers can reuse it.
+     */
+    public static String maskAll(String value, char[] buffer) {
+        return maskCodePoints(value, value.length(), buffer);
+    }
+
+    /**
+     * Same as {@code value.replaceAll(".(?=[^@]*@)", "*")}: masks every code point before the last '@', building the
+     * result in the given buffer of at least {@code value.length()} characters.
+     */
+    public static String maskEmail(String value, char[] buffer) {
+        int at = value.lastIndexOf('@');
+        if (at < 0) {
+            return value;
+        }
+        return maskCodePoints(value, at, buffer);
+    }
+
+    /**
+     * Same as {@code value.replaceFirst("^.+?@(.+)$", stars + "@$1")}: replaces the local part with the given asterisks.
+     */
+    public static String maskEmail(String value, String stars) {
+        if (containsLineTerminator(value)) {
+            return EMAIL_PATTERN.matcher(value).replaceFirst(stars + "@$1");
+        }
+        // The local part must have at least one character and the domain part must not be empty
+        int at = value.indexOf('@', 1);
+        if (at < 0 || at == value.length() - 1) {
+            return value;
+        }
+        return new StringBuilder(stars.length() + value.length() - at).append(stars).append(value, at, value.length()).toString();
+    }
+
+    private static String maskCodePoints(String value, int end, char[] masked) {
+        int length = value.length();
+        int position = 0;
+        int i = 0;
+        while (i < end) {
+            char c = value.charAt(i++);
+            if (isLineTerminator(c)) {
+                masked[position++] = c;
+                continue;
+            }
+            masked[position++] = '*';
+            if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(value.charAt(i))) {
+                i++;
+            }
+        }
+        value.getChars(i, length, masked, position);
+        return new String(masked, 0, position + length - i);
+    }
+
+    /**
+     * Returns a literal string which every match of the regex starts with, or an empty string if there is none.
+     */
+    public static String literalPrefix(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                prefix.append(regex.charAt(i + 1));
+                i += 2;
+            } else if (Character.isLetterOrDigit(c) || " _-@,:;=/%#!~'\"<>&".indexOf(c) >= 0) {
+                prefix.append(c);
+                i++;
+            } else {
+                if ((c == '?' || c == '*' || c == '{') && prefix.length() > 0) {
+                    // The last literal is optional
+                    prefix.setLength(prefix.length() - 1);
+                }
+                break;
+            }
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Same as {@code value.replaceAll(Pattern.quote(literal), replacement)} for a non-empty literal.
+     */
+    public static String replaceLiteral(String value, String literal, String replacement) {
+        int index = value.indexOf(literal);
+        if (index < 0) {
+            return value;
+        }
+        StringBuilder builder = new StringBuilder(value.length());
+        int from = 0;
+        while (index >= 0) {
+            builder.append(value, from, index).append(replacement);
+            from = index + literal.length();
+            index = value.indexOf(literal, from);
+        }
+        return builder.append(value, from, value.length()).toString();
+    }
+}
@@ -0,0 +1,145 @@
+package org.embulk.filter.mask;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands pages to a dedicated masking thread through a bounded queue, so that the upstream plugin can decode
+ * the next page while the previous one is masked. {@link #add(Page)} blocks only while the queue is full.
+ *
+ * Errors raised on the masking thread are rethrown from the next {@link #add(Page)} or {@link #finish()}.
+ */
+public class PipelinedPageOutput implements PageOutput {
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    private static final Optional<Page> END_OF_PAGES = Optional.absent();
+
+    private final PageOutput output;
+    private final BlockingQueue<Optional<Page>> queue;
+    private final Thread worker;
+    private volatile Throwable failure;
+    private boolean finished = false;
+
+    public PipelinedPageOutput(PageOutput output, int queueDepth) {
+        this.output = output;
+        this.queue = new ArrayBlockingQueue<>(queueDepth);
+        this.worker = new Thread(new Worker(Exec.session()), "embulk-filter-mask-pipeline");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    private class Worker implements Runnable {
+        private final ExecSession session;
+
+        private Worker(ExecSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Exec.doWith(session, new ExecAction<Void>() {
+                    @Override
+                    public Void run() throws InterruptedException {
+                        while (true) {
+                            Optional<Page> page = queue.take();
+                            if (!page.isPresent()) {
+                                return null;
+                            }
+                            output.add(page.get());
+                        }
+                    }
+                });
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+    }
+
+    @Override
+    public void add(Page page) {
+        boolean queued = false;
+        try {
+            while (!queued && worker.isAlive()) {
+                queued = queue.offer(Optional.of(page), POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            page.release();
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        if (!worker.isAlive()) {
+            // Pages left in the queue, including this one if it was queued, are never consumed
+            releaseQueuedPages();
+            if (!queued) {
+                page.release();
+            }
+            propagateFailure();
+            throw new IllegalStateException("Masking thread has already stopped");
+        }
+    }
+
+    @Override
+    public void finish() {
+        stopWorker(false);
+        propagateFailure();
+        output.finish();
+        finished = true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (!finished) {
+                // Aborted: pages still waiting in the queue are discarded instead of being masked
+                stopWorker(true);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private void stopWorker(boolean abort) {
+        try {
+            if (abort) {
+                releaseQueuedPages();
+            }
+            while (worker.isAlive() && !queue.offer(END_OF_PAGES, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                // Keep trying until the worker consumes a page or stops
+            }
+            worker.join();
+        } catch (InterruptedException e) {
+            worker.interrupt();
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } finally {
+            releaseQueuedPages();
+        }
+    }
+
+    private void releaseQueuedPages() {
+        Optional<Page> page;
+        while ((page = queue.poll()) != null) {
+            if (page.isPresent()) {
+                page.get().release();
+            }
+        }
+    }
+
+    private void propagateFailure() {
+        if (failure != null) {
+            throw Throwables.propagate(failure);
+        }
+    }
+}
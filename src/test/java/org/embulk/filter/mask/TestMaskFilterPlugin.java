@@ -4,6 +4,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashFunction;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigLoader;
@@ -12,19 +13,24 @@ import org.embulk.config.TaskSource;
 import org.embulk.spi.*;
 import org.embulk.spi.TestPageBuilderReader.*;
 import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.Type;
 import org.embulk.spi.util.Pages;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.msgpack.value.Value;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import static org.embulk.filter.mask.MaskFilterPlugin.PluginTask;
 import static org.embulk.filter.mask.MaskFilterPlugin.Control;
 import static org.embulk.spi.type.Types.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.msgpack.value.ValueFactory.*;
 
 public class TestMaskFilterPlugin {
@@ -137,6 +143,296 @@ public class TestMaskFilterPlugin {
         });
     }
 
+    @Test
+    public void testPipelinedMode() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "pipelined: true\n" +
+                "pipeline_queue_depth: 1\n" +
+                "columns:\n" +
+                "  - { name: _c0}\n" +
+                "  - { name: _c1, type: email}\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", STRING)
+                .add("_c1", STRING)
+                .add("_c2", LONG)
+                .build();
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                final int recordCount = 1000;
+                Object[] values = new Object[recordCount * 3];
+                for (int i = 0; i < recordCount; i++) {
+                    values[i * 3] = "name" + i;
+                    values[i * 3 + 1] = "user" + i + "@example.com";
+                    values[i * 3 + 2] = (long) i;
+                }
+
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, mockPageOutput)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema, values)) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+
+                assertEquals(recordCount, records.size());
+                for (int i = 0; i < recordCount; i++) {
+                    Object[] record = records.get(i);
+                    assertEquals(getMaskedCharacters(values[i * 3]), record[0]);
+                    assertEquals(getMaskedEmail((String) values[i * 3 + 1]), record[1]);
+                    assertEquals(values[i * 3 + 2], record[2]);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testPipelinedModePropagatesDownstreamError() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "pipelined: true\n" +
+                "columns:\n" +
+                "  - { name: _c0}\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", STRING)
+                .build();
+
+        exception.expect(RuntimeException.class);
+        exception.expectMessage("downstream failure");
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                // Enough records to make the builder flush pages on the masking thread, not only in finish()
+                Object[] values = new Object[20000];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = "value_" + i + "_0123456789012345678901234567890123456789012345678901234567890123";
+                }
+
+                PageOutput failingPageOutput = new PageOutput() {
+                    @Override
+                    public void add(Page page) {
+                        page.release();
+                        throw new RuntimeException("downstream failure");
+                    }
+
+                    @Override
+                    public void finish() {
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+                try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, failingPageOutput)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema, values)) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+            }
+        });
+    }
+
+    @Test(timeout = 10000)
+    public void testPipelinedModeCloseWithoutFinish() throws InterruptedException {
+        final AtomicInteger releasedPages = new AtomicInteger();
+        final AtomicInteger receivedPages = new AtomicInteger();
+        final CountDownLatch unblock = new CountDownLatch(1);
+
+        PageOutput blockingPageOutput = new PageOutput() {
+            @Override
+            public void add(Page page) {
+                receivedPages.incrementAndGet();
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        final int queueDepth = 3;
+        PipelinedPageOutput pageOutput = new PipelinedPageOutput(blockingPageOutput, queueDepth);
+        // The first page is taken by the masking thread and blocks there, the rest stay in the queue
+        for (int i = 0; i < queueDepth + 1; i++) {
+            pageOutput.add(Page.wrap(new Buffer(new byte[0], 0, 0) {
+                @Override
+                public void release() {
+                    releasedPages.incrementAndGet();
+                }
+            }));
+        }
+
+        Thread unblocker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (releasedPages.get() < queueDepth) {
+                    Thread.yield();
+                }
+                unblock.countDown();
+            }
+        });
+        unblocker.start();
+        pageOutput.close();
+        unblocker.join();
+
+        assertEquals(1, receivedPages.get());
+        assertEquals(queueDepth, releasedPages.get());
+    }
+
+    @Test
+    public void testThrowExceptionAtZeroPipelineQueueDepth() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "pipelined: true\n" +
+                "pipeline_queue_depth: 0\n" +
+                "columns:\n" +
+                "  - { name: _c0}\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", STRING)
+                .build();
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("pipeline_queue_depth must be greater than 0");
+        new MaskFilterPlugin().transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+            }
+        });
+    }
+
+    @Test
+    public void testProfileMode() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "profile: true\n" +
+                "columns:\n" +
+                "  - { name: _c0, type: email}\n" +
+                "  - { name: _c1, paths: [{key: $.key1}]}\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", STRING)
+                .add("_c1", JSON)
+                .build();
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                final String email = "dummy_test-me.1234@dummy-mail1.com";
+                final Value jsonValue = newMapBuilder().put(s("key1"), s("value1")).build();
+
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, mockPageOutput)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                            email,
+                            jsonValue
+                    )) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+
+                assertEquals(1, records.size());
+                Object[] record = records.get(0);
+
+                assertEquals(getMaskedEmail(email), record[0]);
+                assertEquals("{\"key1\":\"******\"}", record[1].toString());
+            }
+        });
+    }
+
+    @Test
+    public void testColumnProfileSketches() {
+        HashFunction hashFunction = MaskProfile.hashFunction(MaskProfile.newKey());
+        ColumnProfile profile = new ColumnProfile(hashFunction);
+        ColumnProfile other = new ColumnProfile(hashFunction);
+        for (int i = 0; i < 20000; i++) {
+            profile.add("value" + i);
+            other.add(i % 2 == 0 ? "frequent" : "value" + (i + 20000));
+        }
+        profile.merge(other);
+
+        assertEquals(40000, profile.getCount());
+        assertEquals(30001, profile.estimateDistinctCount(), 30001 * 0.05);
+        // Space-Saving may overestimate but never underestimates frequent values
+        assertTrue(profile.getTopHashes().get(0).getValue() >= 10000);
+        assertEquals(Long.valueOf(100), profile.getLengthHistogram().get("4-7"));
+        assertEquals(Long.valueOf(39900), profile.getLengthHistogram().get("8-15"));
+    }
+
+    @Test
+    public void testMaskProfileIsPublishedAndTakenPerRun() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "profile: true\n" +
+                "columns:\n" +
+                "  - { name: _c0, type: email}\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", STRING)
+                .build();
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        final List<String> profileIds = new ArrayList<>();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                PluginTask task = taskSource.loadTask(PluginTask.class);
+                String profileId = task.getProfileId().get();
+                profileIds.add(profileId);
+                assertEquals(32, task.getProfileKey().get().length());
+
+                // Two tasks publish their profiles to the run
+                for (String email : new String[] {"a@x.com", "bb@y.com"}) {
+                    try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, new MockPageOutput())) {
+                        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema, email, email)) {
+                            pageOutput.add(page);
+                        }
+                        pageOutput.finish();
+                    }
+                }
+                MaskProfile published = MaskProfile.take(profileId, MaskProfile.hashFunction(task.getProfileKey().get()));
+                assertEquals(4, published.get("_c0").getCount());
+                assertEquals(2, published.get("_c0").estimateDistinctCount());
+
+                // Publish again so that transaction takes it
+                MaskProfile.publish(profileId, published);
+            }
+        });
+
+        assertEquals(1, profileIds.size());
+        assertTrue(MaskProfile.take(profileIds.get(0), MaskProfile.hashFunction(MaskProfile.newKey())).getProfiles().isEmpty());
+    }
+
     @Test
     public void testPassVarietyOfTypes() {
         String configYaml = "" +
@@ -255,6 +551,72 @@ public class TestMaskFilterPlugin {
         });
     }
 
+    @Test
+    public void testMaskWideSchema() {
+        // A wide schema mixing every type, nulls and masks
+        final int width = 250;
+        final Type[] types = {STRING, BOOLEAN, DOUBLE, LONG, TIMESTAMP, JSON};
+        StringBuilder configYaml = new StringBuilder("type: mask\ncolumns:\n");
+        Schema.Builder schemaBuilder = Schema.builder();
+        final Object[] values = new Object[width];
+        for (int n = 0; n < width; n++) {
+            Type type = types[n % types.length];
+            schemaBuilder.add("_c" + n, type);
+            if (n % 3 == 0) {
+                configYaml.append("  - { name: _c").append(n).append(type == JSON ? ", paths: [{key: $.key1}]}\n" : "}\n");
+            }
+            if (n % 7 == 0) {
+                values[n] = null;
+            } else if (type == STRING) {
+                values[n] = "value" + n;
+            } else if (type == BOOLEAN) {
+                values[n] = n % 2 == 0;
+            } else if (type == DOUBLE) {
+                values[n] = n * 1.5;
+            } else if (type == LONG) {
+                values[n] = (long) n;
+            } else if (type == TIMESTAMP) {
+                values[n] = Timestamp.ofEpochSecond(n);
+            } else {
+                values[n] = newMapBuilder().put(s("key1"), s("value" + n)).put(s("key2"), i(n)).build();
+            }
+        }
+
+        ConfigSource config = getConfigFromYaml(configYaml.toString());
+        final Schema inputSchema = schemaBuilder.build();
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, mockPageOutput)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema, values)) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+
+                assertEquals(1, records.size());
+                Object[] record = records.get(0);
+
+                assertEquals(width, record.length);
+                for (int n = 0; n < width; n++) {
+                    if (values[n] == null) {
+                        assertEquals(null, record[n]);
+                    } else if (n % 3 != 0) {
+                        assertEquals(values[n].toString(), record[n].toString());
+                    } else if (types[n % types.length] == JSON) {
+                        assertEquals("{\"key1\":\"" + getMaskedCharacters("value" + n) + "\",\"key2\":" + n + "}", record[n].toString());
+                    } else {
+                        assertEquals(getMaskedCharacters(values[n]), record[n]);
+                    }
+                }
+            }
+        });
+    }
+
     @Test
     public void testMaskJson() {
         String configYaml = "" +
@@ -326,6 +688,217 @@ public class TestMaskFilterPlugin {
         });
     }
 
+    @Test
+    public void testMaskJsonWithWildcardAndDeepScan() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "columns:\n" +
+                "  - { name: _c0, paths: [{key: $..email, type: email}]}\n" +
+                "  - { name: _c1, paths: [{key: \"$.users[*].card\"}, {key: \"$.tags[-1]\"}]}\n" +
+                "  - { name: _c2, paths: [{key: \"$['owner']\", length: 3}, {key: $.owner.email}]}\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", JSON)
+                .add("_c1", JSON)
+                .add("_c2", JSON)
+                .build();
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                final Value jsonValue = newMapBuilder()
+                        .put(s("users"), newArray(
+                                newMap(s("email"), s("a@x.com"), s("card"), s("1234")),
+                                newMap(s("email"), s("bb@y.com"), s("card"), s("5678"))))
+                        .put(s("owner"), newMap(s("email"), s("c@z.com")))
+                        .put(s("tags"), newArray(s("t1"), s("t2"), s("t3")))
+                        .build();
+
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, mockPageOutput)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                            jsonValue,
+                            jsonValue,
+                            jsonValue
+                    )) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+
+                assertEquals(1, records.size());
+                Object[] record = records.get(0);
+
+                assertEquals(3, record.length);
+                assertEquals("{\"users\":[{\"email\":\"*@x.com\",\"card\":\"1234\"},{\"email\":\"**@y.com\",\"card\":\"5678\"}],\"owner\":{\"email\":\"*@z.com\"},\"tags\":[\"t1\",\"t2\",\"t3\"]}", record[0].toString());
+                assertEquals("{\"users\":[{\"email\":\"a@x.com\",\"card\":\"****\"},{\"email\":\"bb@y.com\",\"card\":\"****\"}],\"owner\":{\"email\":\"c@z.com\"},\"tags\":[\"t1\",\"t2\",\"**\"]}", record[1].toString());
+                assertEquals("{\"users\":[{\"email\":\"a@x.com\",\"card\":\"1234\"},{\"email\":\"bb@y.com\",\"card\":\"5678\"}],\"owner\":\"***\",\"tags\":[\"t1\",\"t2\",\"t3\"]}", record[2].toString());
+            }
+        });
+    }
+
+    @Test
+    public void testMaskJsonWithFilterPathNextToDeepScan() {
+        // Filters are not handled by the path trie, so these columns are masked path by path
+        String configYaml = "" +
+                "type: mask\n" +
+                "columns:\n" +
+                "  - { name: _c0, paths: [{key: \"$.users[?(@.card)].card\"}, {key: $..email, type: email}]}\n" +
+                "  - { name: _c1, paths: [{key: \"$.users[?(@.card)]\"}, {key: $..phone, type: nullify}, {key: $.owner.phone, type: drop}]}\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", JSON)
+                .add("_c1", JSON)
+                .build();
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                final Value jsonValue = newMapBuilder()
+                        .put(s("users"), newArray(
+                                newMap(s("email"), s("a@x.com"), s("card"), s("1234")),
+                                newMap(s("email"), s("bb@y.com"))))
+                        .put(s("owner"), newMap(s("email"), s("c@z.com")))
+                        .build();
+
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, mockPageOutput)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                            jsonValue,
+                            jsonValue
+                    )) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+
+                assertEquals(1, records.size());
+                Object[] record = records.get(0);
+
+                // Every match is masked on its own and paths without matches add nothing
+                assertEquals(2, record.length);
+                assertEquals("{\"users\":[{\"email\":\"*@x.com\",\"card\":\"****\"},{\"email\":\"**@y.com\"}],\"owner\":{\"email\":\"*@z.com\"}}", record[0].toString());
+                assertEquals("{\"users\":[\"*********************************\",{\"email\":\"bb@y.com\"}],\"owner\":{\"email\":\"c@z.com\"}}", record[1].toString());
+            }
+        });
+    }
+
+    @Test
+    public void testMaskJsonWithInnerPathsBeforeOuterPath() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "columns:\n" +
+                "  - { name: _c0, paths: [{key: $.user.ssn}, {key: $.user, type: regex, pattern: token}]}\n" +
+                "  - { name: _c1, paths: [{key: $.user, type: substring, end: 8}, {key: $..ssn}]}\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", JSON)
+                .add("_c1", JSON)
+                .build();
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                final Value jsonValue = newMapBuilder()
+                        .put(s("user"), newMap(s("ssn"), s("123-45-6789"), s("token"), s("token-1"), s("name"), s("ann")))
+                        .build();
+
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, mockPageOutput)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                            jsonValue,
+                            jsonValue
+                    )) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+
+                assertEquals(1, records.size());
+                Object[] record = records.get(0);
+
+                // The outer paths only see the masked ssn, whatever the order of the paths
+                assertEquals(2, record.length);
+                assertEquals("{\"user\":\"{\\\"ssn\\\":\\\"***********\\\",\\\"*\\\":\\\"*-1\\\",\\\"name\\\":\\\"ann\\\"}\"}", record[0].toString());
+                assertEquals("{\"user\":\"*******************\\\",\\\"token\\\":\\\"token-1\\\",\\\"name\\\":\\\"ann\\\"}\"}", record[1].toString());
+            }
+        });
+    }
+
+    @Test
+    public void testDropAndNullifyMaskTypes() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "columns:\n" +
+                "  - { name: _c0, type: drop}\n" +
+                "  - { name: _c1, type: nullify}\n" +
+                "  - { name: _c3, paths: [{key: $.key1, type: drop}, {key: \"$.key2[0]\", type: drop}, {key: $.key3, type: nullify}]}\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", STRING)
+                .add("_c1", LONG)
+                .add("_c2", STRING)
+                .add("_c3", JSON)
+                .build();
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                final String c0ColumnValue = "_c0_THIS_MUST_BE_DROPPED";
+                final Long c1ColumnValue = Long.MAX_VALUE;
+                final String c2ColumnValue = "_c2_THIS_MUST_NOT_BE_MASKED";
+                final Value c3ColumnValue = newMapBuilder()
+                        .put(s("key1"), s("value1"))
+                        .put(s("key2"), newArray(i(0), i(1), i(2)))
+                        .put(s("key3"), s("value3"))
+                        .build();
+
+                assertEquals(3, outputSchema.getColumnCount());
+                assertEquals("_c1", outputSchema.getColumnName(0));
+                assertEquals(LONG, outputSchema.getColumnType(0));
+                assertEquals("_c2", outputSchema.getColumnName(1));
+                assertEquals("_c3", outputSchema.getColumnName(2));
+
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, mockPageOutput)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                            c0ColumnValue,
+                            c1ColumnValue,
+                            c2ColumnValue,
+                            c3ColumnValue
+                    )) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+
+                assertEquals(1, records.size());
+                Object[] record = records.get(0);
+
+                assertEquals(3, record.length);
+                assertEquals(null, record[0]);
+                assertEquals(c2ColumnValue, record[1]);
+                assertEquals("{\"key2\":[1,2],\"key3\":null}", record[2].toString());
+            }
+        });
+    }
+
     @Test
     public void testMaskEmail() {
         String configYaml = "" +
@@ -439,6 +1012,77 @@ public class TestMaskFilterPlugin {
         });
     }
 
+    @Test
+    public void testRegexMaskTypeWithLiteralPrefix() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "columns:\n" +
+                "  - { name: _c0, type: regex, pattern: \"secret\" }\n" +
+                "  - { name: _c1, type: regex, pattern: \"secret\" }\n" +
+                "  - { name: _c2, type: regex, pattern: \"secret[0-9]+\" }\n" +
+                "  - { name: _c3, type: regex, pattern: \"secret[0-9]+\" }\n";
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", STRING)
+                .add("_c1", STRING)
+                .add("_c2", STRING)
+                .add("_c3", STRING)
+                .build();
+
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                try (PageOutput pageOutput = maskFilterPlugin.open(taskSource, inputSchema, outputSchema, mockPageOutput)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), inputSchema,
+                            "a secret and secrets",
+                            "nothing to hide",
+                            "secret secret12 and secret3x",
+                            "secre1 and 12345"
+                    )) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+
+                assertEquals(1, records.size());
+                Object[] record = records.get(0);
+
+                // Values without the literal or the prefix of the pattern are kept as they are
+                assertEquals(4, record.length);
+                assertEquals("a * and *s", record[0]);
+                assertEquals("nothing to hide", record[1]);
+                assertEquals("secret * and *x", record[2]);
+                assertEquals("secre1 and 12345", record[3]);
+            }
+        });
+    }
+
+    @Test
+    public void testMaskScannerMatchesRegex() {
+        String[] values = {
+                "", "@", "a@", "@a", "a@b@c", "dummy_test-me.1234@dummy-mail1.com",
+                "line1\nline2@example.com", "name@example.com\n", "name@example.com\r\n", "\r\n@x\u2028",
+                "\ud83d\ude00smile@example.com", "broken\ud83d@example.com", "no_at_mark"
+        };
+        for (String value : values) {
+            assertEquals(value.replaceAll(".", "*"), MaskScanner.maskAll(value, new char[value.length()]));
+            assertEquals(value.replaceAll(".(?=[^@]*@)", "*"), MaskScanner.maskEmail(value, new char[value.length()]));
+            assertEquals(value.replaceFirst("^.+?@(.+)$", "***@$1"), MaskScanner.maskEmail(value, "***"));
+        }
+
+        assertEquals("abc", MaskScanner.literalPrefix("abc"));
+        assertEquals("ab", MaskScanner.literalPrefix("abc?"));
+        assertEquals("a.b", MaskScanner.literalPrefix("a\\.b[0-9]+"));
+        assertEquals("", MaskScanner.literalPrefix("abc|def"));
+        assertEquals("", MaskScanner.literalPrefix("(?i)abc"));
+        assertEquals("a*b**", MaskScanner.replaceLiteral("axxbxxxx", "xx", "*"));
+    }
+
     @Test
     public void testSubstringMaskType() {
         String configYaml = "" +
@@ -0,0 +1,515 @@
+package org.embulk.filter.mask;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigLoader;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.*;
+import org.embulk.spi.time.Timestamp;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.msgpack.value.Value;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.embulk.filter.mask.MaskFilterPlugin.Control;
+import static org.embulk.spi.type.Types.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.msgpack.value.ValueFactory.*;
+
+/**
+ * Pushes large synthetic datasets through {@link MaskFilterPlugin} and checks what the filter adds on top of copying
+ * the same pages column by column from a {@link PageReader} to a {@link PageBuilder}, against the budgets in
+ * {@code performance_budgets.properties}. Both sides are warmed up and measured three times alternately, and the best
+ * numbers are compared, so that the budgets only cover the masking itself.
+ *
+ * The cases run with {@code ./gradlew perfTest}, not with the default {@code test} task. The number of rows can be
+ * changed with {@code -Dmask.perf.rows=N} (e.g. {@code ./gradlew perfTest -Dmask.perf.rows=5000000}), and
+ * {@code -Dmask.perf.calibrate=true} prints the measured numbers with budgets derived from them instead of checking.
+ */
+public class TestMaskFilterPluginPerformance {
+    private static final String ROWS_PROPERTY = "mask.perf.rows";
+    private static final String CALIBRATE_PROPERTY = "mask.perf.calibrate";
+    private static final int DEFAULT_ROWS = 200000;
+    private static final int ROWS_PER_PAGE = 1024;
+    private static final int MEASUREMENTS = 3;
+
+    // Allocation is reproducible between runs, so its margin is small. Time depends on the machine and is noisy
+    private static final double BYTES_MARGIN = 1.25;
+    private static final long MIN_BYTES_BUDGET = 64;
+    private static final double NANOS_MARGIN = 3;
+    private static final long NANOS_ALLOWANCE = 250;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private Properties budgets;
+    private int rows;
+
+    private interface RowGenerator {
+        void fill(PageBuilder builder, List<Column> columns, long row);
+    }
+
+    private static class Measurement {
+        long rows;
+        long allocatedBytes;
+        long elapsedNanos;
+
+        double bytesPerRow() {
+            return (double) allocatedBytes / rows;
+        }
+
+        double nanosPerRow() {
+            return (double) elapsedNanos / rows;
+        }
+
+        void keepBest(Measurement other) {
+            allocatedBytes = Math.min(allocatedBytes, other.allocatedBytes);
+            elapsedNanos = Math.min(elapsedNanos, other.elapsedNanos);
+        }
+    }
+
+    private static class CountingPageOutput implements PageOutput {
+        long records;
+
+        @Override
+        public void add(Page page) {
+            records += page.getRecordCount();
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class CollectingPageOutput implements PageOutput {
+        final List<Page> pages = new ArrayList<>();
+
+        @Override
+        public void add(Page page) {
+            pages.add(page);
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Copies every column as is. This is the baseline the filter is compared with.
+     */
+    private class CopyPageOutput implements PageOutput, ColumnVisitor {
+        private final PageReader pageReader;
+        private final PageBuilder pageBuilder;
+        private final Schema schema;
+
+        CopyPageOutput(Schema schema, PageOutput output) {
+            this.pageReader = new PageReader(schema);
+            this.pageBuilder = new PageBuilder(runtime.getBufferAllocator(), schema, output);
+            this.schema = schema;
+        }
+
+        @Override
+        public void add(Page page) {
+            pageReader.setPage(page);
+            while (pageReader.nextRecord()) {
+                schema.visitColumns(this);
+                pageBuilder.addRecord();
+            }
+        }
+
+        @Override
+        public void finish() {
+            pageBuilder.finish();
+        }
+
+        @Override
+        public void close() {
+            pageReader.close();
+            pageBuilder.close();
+        }
+
+        @Override
+        public void booleanColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setBoolean(column, pageReader.getBoolean(column));
+            }
+        }
+
+        @Override
+        public void longColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setLong(column, pageReader.getLong(column));
+            }
+        }
+
+        @Override
+        public void doubleColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setDouble(column, pageReader.getDouble(column));
+            }
+        }
+
+        @Override
+        public void stringColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setString(column, pageReader.getString(column));
+            }
+        }
+
+        @Override
+        public void timestampColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setTimestamp(column, pageReader.getTimestamp(column));
+            }
+        }
+
+        @Override
+        public void jsonColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setJson(column, pageReader.getJson(column));
+            }
+        }
+    }
+
+    @Before
+    public void loadBudgets() throws IOException {
+        budgets = new Properties();
+        try (InputStream in = TestMaskFilterPluginPerformance.class.getResourceAsStream("performance_budgets.properties")) {
+            budgets.load(in);
+        }
+        rows = Integer.parseInt(System.getProperty(ROWS_PROPERTY, String.valueOf(DEFAULT_ROWS)));
+    }
+
+    private ConfigSource getConfigFromYaml(String yaml) {
+        ConfigLoader loader = new ConfigLoader(Exec.getModelManager());
+        return loader.fromYamlString(yaml);
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+                return sunBean;
+            }
+        }
+        return null;
+    }
+
+    private Measurement run(String configYaml, final Schema inputSchema, final RowGenerator generator, final long rowCount,
+                            final boolean masked) {
+        final Measurement measurement = new Measurement();
+        final com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        ConfigSource config = getConfigFromYaml(configYaml);
+        final MaskFilterPlugin maskFilterPlugin = new MaskFilterPlugin();
+        maskFilterPlugin.transaction(config, inputSchema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema) {
+                CountingPageOutput countingPageOutput = new CountingPageOutput();
+                CollectingPageOutput input = new CollectingPageOutput();
+                List<Column> columns = inputSchema.getColumns();
+
+                try (PageBuilder inputBuilder = new PageBuilder(runtime.getBufferAllocator(), inputSchema, input);
+                     PageOutput pageOutput = masked
+                             ? maskFilterPlugin.open(taskSource, inputSchema, outputSchema, countingPageOutput)
+                             : new CopyPageOutput(inputSchema, countingPageOutput)) {
+                    long row = 0;
+                    while (row < rowCount) {
+                        // Input pages are generated outside of the measured section
+                        long chunkEnd = Math.min(rowCount, row + ROWS_PER_PAGE);
+                        for (; row < chunkEnd; row++) {
+                            generator.fill(inputBuilder, columns, row);
+                            inputBuilder.addRecord();
+                        }
+                        inputBuilder.flush();
+
+                        for (Page page : input.pages) {
+                            long allocated = threadMXBean != null ? threadMXBean.getThreadAllocatedBytes(threadId) : 0;
+                            long start = System.nanoTime();
+                            pageOutput.add(page);
+                            measurement.elapsedNanos += System.nanoTime() - start;
+                            if (threadMXBean != null) {
+                                measurement.allocatedBytes += threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+                            }
+                        }
+                        input.pages.clear();
+                    }
+
+                    long allocated = threadMXBean != null ? threadMXBean.getThreadAllocatedBytes(threadId) : 0;
+                    long start = System.nanoTime();
+                    pageOutput.finish();
+                    measurement.elapsedNanos += System.nanoTime() - start;
+                    if (threadMXBean != null) {
+                        measurement.allocatedBytes += threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+                    }
+                }
+                measurement.rows = countingPageOutput.records;
+            }
+        });
+
+        assertEquals(rowCount, measurement.rows);
+        return measurement;
+    }
+
+    private void assertWithinBudget(String name, String configYaml, Schema inputSchema, RowGenerator generator, long rowCount) {
+        // Warm up JIT before measuring so that budgets are compared against steady state numbers
+        run(configYaml, inputSchema, generator, rowCount, false);
+        run(configYaml, inputSchema, generator, rowCount, true);
+        Measurement copied = run(configYaml, inputSchema, generator, rowCount, false);
+        Measurement masked = run(configYaml, inputSchema, generator, rowCount, true);
+        for (int i = 1; i < MEASUREMENTS; i++) {
+            copied.keepBest(run(configYaml, inputSchema, generator, rowCount, false));
+            masked.keepBest(run(configYaml, inputSchema, generator, rowCount, true));
+        }
+
+        double extraBytesPerRow = masked.bytesPerRow() - copied.bytesPerRow();
+        double extraNanosPerRow = masked.nanosPerRow() - copied.nanosPerRow();
+        Logger logger = Exec.getLogger(TestMaskFilterPluginPerformance.class);
+        logger.info(String.format("%s: %d rows, copy %.1f bytes/row %.0f ns/row, mask %.1f bytes/row %.0f ns/row, "
+                        + "extra %.1f bytes/row %.0f ns/row",
+                name, rowCount, copied.bytesPerRow(), copied.nanosPerRow(), masked.bytesPerRow(), masked.nanosPerRow(),
+                extraBytesPerRow, extraNanosPerRow));
+
+        if (Boolean.getBoolean(CALIBRATE_PROPERTY)) {
+            logger.info(String.format("%s.max_extra_bytes_per_row=%d%n%s.max_extra_nanos_per_row=%d",
+                    name, Math.max(MIN_BYTES_BUDGET, (long) Math.ceil(extraBytesPerRow * BYTES_MARGIN)),
+                    name, (long) Math.ceil(Math.max(0, extraNanosPerRow) * NANOS_MARGIN) + NANOS_ALLOWANCE));
+            return;
+        }
+
+        long maxExtraBytesPerRow = getBudget(name + ".max_extra_bytes_per_row");
+        long maxExtraNanosPerRow = getBudget(name + ".max_extra_nanos_per_row");
+        if (getThreadMXBean() != null) {
+            assertTrue(String.format("%s allocated %.1f bytes/row more than copying, exceeding the budget of %d bytes/row",
+                    name, extraBytesPerRow, maxExtraBytesPerRow), extraBytesPerRow <= maxExtraBytesPerRow);
+        }
+        assertTrue(String.format("%s took %.0f ns/row more than copying, exceeding the budget of %d ns/row",
+                name, extraNanosPerRow, maxExtraNanosPerRow), extraNanosPerRow <= maxExtraNanosPerRow);
+    }
+
+    private long getBudget(String key) {
+        String budget = budgets.getProperty(key);
+        assertNotNull(String.format("%s is not set in performance_budgets.properties. "
+                + "Run ./gradlew perfTest -D%s=true and record the printed budgets", key, CALIBRATE_PROPERTY), budget);
+        return Long.parseLong(budget);
+    }
+
+    private static Schema buildStringSchema(int width) {
+        Schema.Builder builder = Schema.builder();
+        for (int i = 0; i < width; i++) {
+            builder.add("_c" + i, STRING);
+        }
+        return builder.build();
+    }
+
+    private static RowGenerator emailGenerator() {
+        return new RowGenerator() {
+            @Override
+            public void fill(PageBuilder builder, List<Column> columns, long row) {
+                for (Column column : columns) {
+                    builder.setString(column, "user" + row + ".col" + column.getIndex() + "@example" + (row % 97) + ".com");
+                }
+            }
+        };
+    }
+
+    private static Value buildJson(long row, int width) {
+        Map<Value, Value> items = new LinkedHashMap<>();
+        for (int i = 0; i < width; i++) {
+            items.put(newString("key" + i), newMap(
+                    newString("email"), newString("user" + row + "_" + i + "@example.com"),
+                    newString("card"), newString("4111-1111-1111-" + (1000 + row % 9000)),
+                    newString("amount"), newInteger(row * i),
+                    newString("tags"), newArray(newString("a"), newString("b"), newInteger(i))
+            ));
+        }
+        return newMap(
+                newString("id"), newInteger(row),
+                newString("name"), newString("name_" + row),
+                newString("email"), newString("user" + row + "@example.com"),
+                newString("items"), newMap(items)
+        );
+    }
+
+    private String buildMaskColumnsYaml(String options, int width, int step) {
+        StringBuilder yaml = new StringBuilder("type: mask\ncolumns:\n");
+        for (int i = 0; i < width; i += step) {
+            yaml.append("  - { name: _c").append(i).append(options).append("}\n");
+        }
+        return yaml.toString();
+    }
+
+    @Test
+    public void testPassthroughBudget() {
+        assertWithinBudget("passthrough", "type: mask\ncolumns:\n  - { name: _dummy}\n",
+                buildStringSchema(10), emailGenerator(), rows);
+    }
+
+    @Test
+    public void testAllMaskBudget() {
+        assertWithinBudget("all", buildMaskColumnsYaml("", 10, 2),
+                buildStringSchema(10), emailGenerator(), rows);
+    }
+
+    @Test
+    public void testEmailMaskBudget() {
+        assertWithinBudget("email", buildMaskColumnsYaml(", type: email", 10, 2),
+                buildStringSchema(10), emailGenerator(), rows);
+    }
+
+    @Test
+    public void testRegexMaskBudget() {
+        assertWithinBudget("regex", buildMaskColumnsYaml(", type: regex, pattern: \"[0-9]+\"", 10, 2),
+                buildStringSchema(10), emailGenerator(), rows);
+    }
+
+    @Test
+    public void testSubstringMaskBudget() {
+        assertWithinBudget("substring", buildMaskColumnsYaml(", type: substring, start: 2, end: 8", 10, 2),
+                buildStringSchema(10), emailGenerator(), rows);
+    }
+
+    @Test
+    public void testLongStringBudget() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "columns:\n" +
+                "  - { name: _c0}\n" +
+                "  - { name: _c1, type: email}\n" +
+                "  - { name: _c2, type: regex, pattern: \"secret[0-9]+\"}\n";
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 4096) {
+            text.append("lorem ipsum dolor sit amet, consectetur adipiscing elit ");
+        }
+        final String longText = text.toString();
+
+        assertWithinBudget("long_string", configYaml, buildStringSchema(3), new RowGenerator() {
+            @Override
+            public void fill(PageBuilder builder, List<Column> columns, long row) {
+                builder.setString(columns.get(0), longText + row);
+                builder.setString(columns.get(1), longText.replace(' ', '.') + row + "@example.com");
+                builder.setString(columns.get(2), longText + (row % 10 == 0 ? "secret" + row : ""));
+            }
+        }, Math.max(1, rows / 10));
+    }
+
+    @Test
+    public void testVarietyOfTypesBudget() {
+        final Schema inputSchema = Schema.builder()
+                .add("_c0", STRING)
+                .add("_c1", BOOLEAN)
+                .add("_c2", DOUBLE)
+                .add("_c3", LONG)
+                .add("_c4", TIMESTAMP)
+                .build();
+
+        // Timestamps are copied as they are: masking one mostly measures the formatting of Timestamp.toString()
+        assertWithinBudget("types", buildMaskColumnsYaml("", 4, 1), inputSchema, new RowGenerator() {
+            @Override
+            public void fill(PageBuilder builder, List<Column> columns, long row) {
+                builder.setString(columns.get(0), "value_" + row);
+                builder.setBoolean(columns.get(1), row % 2 == 0);
+                builder.setDouble(columns.get(2), row * 1.5);
+                builder.setLong(columns.get(3), row);
+                builder.setTimestamp(columns.get(4), Timestamp.ofEpochSecond(row));
+            }
+        }, rows);
+    }
+
+    @Test
+    public void testWideSchemaBudget() {
+        assertWithinBudget("wide", buildMaskColumnsYaml("", 500, 5),
+                buildStringSchema(500), emailGenerator(), Math.max(1, rows / 50));
+    }
+
+    @Test
+    public void testJsonMaskBudget() {
+        String configYaml = "" +
+                "type: mask\n" +
+                "columns:\n" +
+                "  - { name: _c0, paths: [{key: $.name}, {key: $.email, type: email}, {key: $.items.key0.card, type: substring, start: 15}]}\n";
+        final Schema inputSchema = Schema.builder().add("_c0", JSON).build();
+
+        assertWithinBudget("json", configYaml, inputSchema, new RowGenerator() {
+            @Override
+            public void fill(PageBuilder builder, List<Column> columns, long row) {
+                builder.setJson(columns.get(0), buildJson(row, 2));
+            }
+        }, Math.max(1, rows / 10));
+    }
+
+    @Test
+    public void testManyJsonPathsBudget() {
+        // Deep scans and wildcards keep several paths active on every element of the document
+        StringBuilder configYaml = new StringBuilder("type: mask\ncolumns:\n  - { name: _c0, paths: [{key: $..email, type: email}"
+                + ", {key: \"$.items[*].card\", type: substring, start: 15}");
+        for (int i = 0; i < 10; i++) {
+            configYaml.append(", {key: \"$.items.key").append(i).append(".tags[*]\"}");
+        }
+        for (int i = 10; i < 20; i++) {
+            configYaml.append(", {key: $..key").append(i).append(".amount}");
+        }
+        configYaml.append(", {key: \"$..tags[-1]\"}, {key: $.name}]}\n");
+        final Schema inputSchema = Schema.builder().add("_c0", JSON).build();
+
+        assertWithinBudget("json_paths", configYaml.toString(), inputSchema, new RowGenerator() {
+            @Override
+            public void fill(PageBuilder builder, List<Column> columns, long row) {
+                builder.setJson(columns.get(0), buildJson(row, 20));
+            }
+        }, Math.max(1, rows / 20));
+    }
+
+    @Test
+    public void testBigJsonMaskBudget() {
+        StringBuilder configYaml = new StringBuilder("type: mask\ncolumns:\n  - { name: _c0, paths: [{key: $.email, type: email}");
+        for (int i = 0; i < 200; i += 10) {
+            configYaml.append(", {key: $.items.key").append(i).append(".email, type: email}");
+        }
+        configYaml.append("]}\n");
+        final Schema inputSchema = Schema.builder().add("_c0", JSON).build();
+
+        assertWithinBudget("big_json", configYaml.toString(), inputSchema, new RowGenerator() {
+            @Override
+            public void fill(PageBuilder builder, List<Column> columns, long row) {
+                builder.setJson(columns.get(0), buildJson(row, 200));
+            }
+        }, Math.max(1, rows / 200));
+    }
+}